@@ -25,7 +25,9 @@
 package hudson.plugins.dumpinfo;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.PluginWrapper;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
@@ -33,14 +35,26 @@ import hudson.model.AbstractProject;
 import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.JDK;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.FormValidation;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 /**
  * This plugin allows jobs to automatically dump some important Jenkins-specific
@@ -51,12 +65,53 @@ import org.kohsuke.stapler.DataBoundConstructor;
  */
 public final class DumpInfoBuildWrapper extends BuildWrapper
 {
+  private static final Logger LOG = Logger.getLogger(DumpInfoBuildWrapper.class
+      .getName());
+
   /**
-   * Plugin marker for BuildWrapper.
+   * Default interval between two stack samples, in milliseconds.
+   */
+  private static final int DEFAULT_PROFILE_INTERVAL = 100;
+
+  /**
+   * Default build duration above which the samples are kept, in seconds.
+   */
+  private static final int DEFAULT_PROFILE_THRESHOLD = 600;
+
+  /**
+   * Name of the build artifact holding the collapsed stacks.
+   */
+  private static final String PROFILE_FILE = "dumpinfo-profile.collapsed";
+
+  /**
+   * Plugin marker for BuildWrapper, holding the global configuration.
    */
   @Extension
   public static class DescriptorImpl extends BuildWrapperDescriptor
   {
+    /**
+     * Where to spool the dumps of every job instead of the build log, if
+     * anywhere. Only administrators may set it, as it names a file or a port
+     * of the master.
+     * 
+     * @see DumpInfoSpool#forTarget(String)
+     * @since 1.2
+     */
+    private String spoolTarget;
+
+    /**
+     * Whether or not to append a snapshot of every build to the history.
+     * 
+     * @see DumpInfoHistory
+     * @since 1.2
+     */
+    private boolean recordHistory = true;
+
+    public DescriptorImpl()
+    {
+      load();
+    }
+
     @Override
     public String getDisplayName()
     {
@@ -68,6 +123,88 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
     {
       return true;
     }
+
+    @Override
+    public boolean configure(final StaplerRequest req, final JSONObject json)
+        throws FormException
+    {
+      Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+
+      final String target = Util.fixEmptyAndTrim(json.optString("spoolTarget"));
+      if (target != null)
+      {
+        try
+        {
+          DumpInfoSpool.validate(target);
+        }
+
+        catch (final IllegalArgumentException e)
+        {
+          throw new FormException(Messages.DumpInfo_Spool_Unusable(target),
+              "spoolTarget");
+        }
+      }
+
+      spoolTarget = target;
+      recordHistory = json.optBoolean("recordHistory");
+      save();
+      DumpInfoSpool.retain(target);
+
+      return true;
+    }
+
+    /**
+     * Get where to spool the dumps instead of the build log.
+     * 
+     * @return the spool target, or <code>null</code> for the build log
+     */
+    public String getSpoolTarget()
+    {
+      return spoolTarget;
+    }
+
+    /**
+     * Get whether or not to append a snapshot of every build to the history.
+     * 
+     * @return whether or not to record the history
+     */
+    public boolean isRecordHistory()
+    {
+      return recordHistory;
+    }
+
+    /**
+     * Check a spool target from the global configuration form.
+     * 
+     * @param value
+     *          the spool target
+     * @return the validation result
+     */
+    public FormValidation doCheckSpoolTarget(
+        @QueryParameter final String value)
+    {
+      if (!Hudson.getInstance().hasPermission(Hudson.ADMINISTER))
+      {
+        return FormValidation.ok();
+      }
+
+      final String target = Util.fixEmptyAndTrim(value);
+      if (target == null)
+      {
+        return FormValidation.ok();
+      }
+
+      try
+      {
+        DumpInfoSpool.validate(target);
+        return FormValidation.ok();
+      }
+
+      catch (final IllegalArgumentException e)
+      {
+        return FormValidation.error(Messages.DumpInfo_Spool_Unusable(target));
+      }
+    }
   }
 
   /**
@@ -92,6 +229,15 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
    */
   private final boolean dumpPlugins;
 
+  /**
+   * Whether or not to dump the details of Jenkins plugins: state, dependency
+   * graph, archive size and loaded classes.
+   * 
+   * @see PluginUtils#getPluginDetails(hudson.PluginManager)
+   * @since 1.2
+   */
+  private final boolean dumpPluginDetails;
+
   /**
    * Whether or not to dump information about Jenkins system properties.
    * 
@@ -114,6 +260,38 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
    */
   private final boolean dumpJndi;
 
+  /**
+   * Whether or not to dump information about the tool installations of the
+   * node executing the build.
+   * 
+   * @see ToolUtils#getToolInstallations(hudson.model.Node,
+   *      hudson.remoting.VirtualChannel)
+   * @since 1.2
+   */
+  private final boolean dumpTools;
+
+  /**
+   * Whether or not to sample the stack traces of the node while building.
+   * 
+   * @see StackSampler
+   * @since 1.2
+   */
+  private final boolean profile;
+
+  /**
+   * Interval between two stack samples, in milliseconds.
+   * 
+   * @since 1.2
+   */
+  private final int profileInterval;
+
+  /**
+   * Build duration, in seconds, above which the samples are kept.
+   * 
+   * @since 1.2
+   */
+  private final int profileThreshold;
+
   /**
    * Configuration of this plugin is per-job.
    * 
@@ -136,7 +314,8 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
       final boolean dumpSystemProperties, final boolean dumpEnvironmentVariables)
   {
     this(dumpComputers, dumpJdks, dumpPlugins, dumpSystemProperties,
-        dumpEnvironmentVariables, true);
+        dumpEnvironmentVariables, true, false, false, false,
+        DEFAULT_PROFILE_INTERVAL, DEFAULT_PROFILE_THRESHOLD);
   }
 
   /**
@@ -155,6 +334,18 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
    *          variables
    * @param dumpJndi
    *          whether or not to dump information about Jenkins JNDI bindings
+   * @param dumpTools
+   *          whether or not to dump information about the tool installations
+   *          of the node executing the build
+   * @param dumpPluginDetails
+   *          whether or not to dump the details of Jenkins plugins
+   * @param profile
+   *          whether or not to sample the stack traces of the node while
+   *          building
+   * @param profileInterval
+   *          interval between two stack samples, in milliseconds
+   * @param profileThreshold
+   *          build duration, in seconds, above which the samples are kept
    * 
    * @since 1.2
    */
@@ -162,7 +353,10 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
   public DumpInfoBuildWrapper(final boolean dumpComputers,
       final boolean dumpJdks, final boolean dumpPlugins,
       final boolean dumpSystemProperties,
-      final boolean dumpEnvironmentVariables, final boolean dumpJndi)
+      final boolean dumpEnvironmentVariables, final boolean dumpJndi,
+      final boolean dumpTools, final boolean dumpPluginDetails,
+      final boolean profile, final int profileInterval,
+      final int profileThreshold)
   {
     super();
 
@@ -172,6 +366,11 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
     this.dumpSystemProperties = dumpSystemProperties;
     this.dumpEnvironmentVariables = dumpEnvironmentVariables;
     this.dumpJndi = dumpJndi;
+    this.dumpTools = dumpTools;
+    this.dumpPluginDetails = dumpPluginDetails;
+    this.profile = profile;
+    this.profileInterval = profileInterval;
+    this.profileThreshold = profileThreshold;
   }
 
   /**
@@ -235,24 +434,227 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
     return dumpJndi;
   }
 
+  /**
+   * Get whether or not to dump information about the tool installations of
+   * the node executing the build.
+   * 
+   * @return whether or not to dump information about the tool installations
+   */
+  public boolean isDumpTools()
+  {
+    return dumpTools;
+  }
+
+  /**
+   * Get whether or not to dump the details of Jenkins plugins.
+   * 
+   * @return whether or not to dump the details of Jenkins plugins
+   */
+  public boolean isDumpPluginDetails()
+  {
+    return dumpPluginDetails;
+  }
+
+  /**
+   * Get whether or not to sample the stack traces of the node while building.
+   * 
+   * @return whether or not to sample the stack traces of the node
+   */
+  public boolean isProfile()
+  {
+    return profile;
+  }
+
+  /**
+   * Get the interval between two stack samples.
+   * 
+   * @return the interval between two stack samples, in milliseconds
+   */
+  public int getProfileInterval()
+  {
+    return profileInterval > 0 ? Math.max(StackSampler.MIN_INTERVAL,
+        profileInterval) : DEFAULT_PROFILE_INTERVAL;
+  }
+
+  /**
+   * Get the build duration above which the samples are kept.
+   * 
+   * @return the build duration above which the samples are kept, in seconds
+   */
+  public int getProfileThreshold()
+  {
+    return profileThreshold > 0 ? profileThreshold : DEFAULT_PROFILE_THRESHOLD;
+  }
+
+  @Override
+  public DescriptorImpl getDescriptor()
+  {
+    return (DescriptorImpl) super.getDescriptor();
+  }
+
   @Override
   public BuildWrapper.Environment setUp(
       @SuppressWarnings("rawtypes") final AbstractBuild build,
       final Launcher launcher, final BuildListener listener)
       throws IOException, InterruptedException
   {
-    final Hudson hudson = Hudson.getInstance();
-    final PrintStream logger = listener.getLogger();
+    final long start = System.nanoTime();
+    final long[] sections = new long[DumpInfoHistory.SECTIONS];
+    final String spoolTarget = getDescriptor().getSpoolTarget();
+
+    // when spooling, render in memory and leave a reference in the build log
+    final ByteArrayOutputStream spooled = new ByteArrayOutputStream();
+    final PrintStream logger = spoolTarget == null ? listener.getLogger()
+        : new PrintStream(spooled, true, "UTF-8");
 
     // ---
 
     logger.println(MessagesUtils.format(Hudson.getInstance()));
 
+    final DumpInfoSnapshot controller = DumpInfoSnapshot.of(build,
+        new DumpInfoSnapshot.Collector()
+        {
+          public void collect(final DumpInfoSnapshot snapshot)
+          {
+            collectController(snapshot);
+          }
+        });
+
+    NodeSnapshot node = new NodeSnapshot(dumpSystemProperties,
+        dumpEnvironmentVariables);
+    if (dumpSystemProperties || dumpEnvironmentVariables)
+    {
+      node = launcher.getChannel().call(node);
+    }
+
+    dump(logger, sections, DumpInfoHistory.SECTION_COMPUTERS, controller);
+    dump(logger, sections, DumpInfoHistory.SECTION_JDKS, controller);
+    dump(logger, sections, DumpInfoHistory.SECTION_PLUGINS, controller);
+    dump(logger, sections, DumpInfoHistory.SECTION_PLUGIN_DETAILS, controller);
+
+    for (final Iterator<Map.Entry<String, String>> iterator = node
+        .iterateSystemProperties(); iterator.hasNext();)
+    {
+      final Map.Entry<String, String> entry = iterator.next();
+      dump(logger, sections, DumpInfoHistory.SECTION_SYSTEM_PROPERTIES,
+          MessagesUtils.formatSystemProperty(entry.getKey(), entry.getValue()));
+    }
+
+    for (final Iterator<Map.Entry<String, String>> iterator = node
+        .iterateEnvironmentVariables(); iterator.hasNext();)
+    {
+      final Map.Entry<String, String> entry = iterator.next();
+      dump(logger, sections, DumpInfoHistory.SECTION_ENVIRONMENT_VARIABLES,
+          MessagesUtils.formatEnvironmentVariable(entry.getKey(),
+              entry.getValue()));
+    }
+
+    dump(logger, sections, DumpInfoHistory.SECTION_JNDI, controller);
+
+    if (dumpTools && build.getBuiltOn() != null)
+    {
+      for (final String line : ToolUtils.getToolInstallations(
+          build.getBuiltOn(), launcher.getChannel()))
+      {
+        dump(logger, sections, DumpInfoHistory.SECTION_TOOLS, line);
+      }
+    }
+
+    // ---
+
+    if (spoolTarget != null)
+    {
+      spool(build, listener.getLogger(), spoolTarget, spooled
+          .toString("UTF-8"));
+    }
+
+    if (getDescriptor().isRecordHistory())
+    {
+      record(build, sections, System.nanoTime() - start);
+    }
+
+    if (!profile)
+    {
+      return new Environment()
+      {
+        /* empty implementation */
+      };
+    }
+
+    // ---
+
+    final VirtualChannel channel = launcher.getChannel();
+    final String id = UUID.randomUUID().toString();
+
+    // profiling is a diagnostic, it must never fail the build
+    try
+    {
+      channel.call(new StackSampler.Start(id, getProfileInterval()));
+    }
+
+    catch (final IOException e)
+    {
+      LOG.log(Level.WARNING, e.getMessage(), e);
+      return new Environment()
+      {
+        /* empty implementation */
+      };
+    }
+
+    return new Environment()
+    {
+      @Override
+      public boolean tearDown(
+          @SuppressWarnings("rawtypes") final AbstractBuild build,
+          final BuildListener listener) throws IOException,
+          InterruptedException
+      {
+        final long duration = System.currentTimeMillis()
+            - build.getTimeInMillis();
+        final boolean slow = duration > TimeUnit.SECONDS
+            .toMillis(getProfileThreshold());
+
+        try
+        {
+          final String stacks = channel.call(new StackSampler.Stop(id, slow));
+          if (stacks != null)
+          {
+            final FilePath artifacts = new FilePath(build.getArtifactsDir());
+            artifacts.mkdirs();
+            artifacts.child(PROFILE_FILE).write(stacks, "UTF-8");
+            listener.getLogger().println(
+                Messages.DumpInfo_Profile(Hudson.getInstance().getRootUrl()
+                    + build.getUrl() + "artifact/" + PROFILE_FILE));
+          }
+        }
+
+        catch (final IOException e)
+        {
+          LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Collect the controller-side sections, which are the same for every build
+   * of a run.
+   * 
+   * @param snapshot
+   *          the snapshot to fill
+   */
+  private void collectController(final DumpInfoSnapshot snapshot)
+  {
+    final Hudson hudson = Hudson.getInstance();
+
     if (dumpComputers)
     {
       for (final Computer computer : hudson.getComputers())
       {
-        logger.println(MessagesUtils.format(computer));
+        snapshot.add(DumpInfoHistory.SECTION_COMPUTERS,
+            MessagesUtils.format(computer));
       }
     }
 
@@ -260,7 +662,7 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
     {
       for (final JDK jdk : hudson.getJDKs())
       {
-        logger.println(MessagesUtils.format(jdk));
+        snapshot.add(DumpInfoHistory.SECTION_JDKS, MessagesUtils.format(jdk));
       }
     }
 
@@ -268,45 +670,154 @@ public final class DumpInfoBuildWrapper extends BuildWrapper
     {
       for (final PluginWrapper plugin : hudson.getPluginManager().getPlugins())
       {
-        logger.println(MessagesUtils.format(plugin));
+        snapshot.add(DumpInfoHistory.SECTION_PLUGINS,
+            MessagesUtils.format(plugin));
       }
     }
 
-    if (dumpSystemProperties)
+    if (dumpPluginDetails)
     {
-      for (final Map.Entry<String, String> entry : SystemUtils
-          .getSystemProperties().entrySet())
+      for (final String line : PluginUtils.getPluginDetails(hudson
+          .getPluginManager()))
       {
-        logger.println(MessagesUtils.formatSystemProperty(entry.getKey(),
-            entry.getValue()));
+        snapshot.add(DumpInfoHistory.SECTION_PLUGIN_DETAILS, line);
       }
     }
 
-    if (dumpEnvironmentVariables)
+    if (dumpJndi)
     {
-      for (final Map.Entry<String, String> entry : SystemUtils
-          .getEnvironmentVariables().entrySet())
+      for (final Map.Entry<String, String> entry : JndiUtils.getJndiBindings()
+          .entrySet())
       {
-        logger.println(MessagesUtils.formatEnvironmentVariable(entry.getKey(),
-            entry.getValue()));
+        snapshot.add(DumpInfoHistory.SECTION_JNDI,
+            MessagesUtils.formatJndiBinding(entry.getKey(), entry.getValue()));
       }
     }
+  }
 
-    if (dumpJndi)
+  /**
+   * Print all the lines of a shared section to the job log.
+   * 
+   * @param logger
+   *          the job log
+   * @param sections
+   *          the per-section fingerprints
+   * @param section
+   *          the section to print
+   * @param snapshot
+   *          the snapshot holding the section
+   */
+  private static void dump(final PrintStream logger, final long[] sections,
+      final int section, final DumpInfoSnapshot snapshot)
+  {
+    for (final String line : snapshot.getLines(section))
     {
-      for (final Map.Entry<String, String> entry : JndiUtils.getJndiBindings()
-          .entrySet())
+      dump(logger, sections, section, line);
+    }
+  }
+
+  /**
+   * Hand a rendered dump over to the spool, leaving a reference line in the
+   * job log. If the spool target is not usable, the dump goes to the job log.
+   * 
+   * @param build
+   *          the build being set up
+   * @param logger
+   *          the job log
+   * @param spoolTarget
+   *          the spool target
+   * @param dump
+   *          the rendered dump
+   */
+  private static void spool(final AbstractBuild<?, ?> build,
+      final PrintStream logger, final String spoolTarget, final String dump)
+  {
+    final String id = build.getProject().getFullName() + " #"
+        + build.getNumber();
+
+    try
+    {
+      final DumpInfoSpool spool = DumpInfoSpool.forTarget(spoolTarget);
+      if (spool.offer(id, dump))
+      {
+        logger.println(Messages.DumpInfo_Spool_Queued(id, spoolTarget));
+      }
+      else
       {
-        logger.println(MessagesUtils.formatJndiBinding(entry.getKey(),
-            entry.getValue()));
+        logger.println(Messages.DumpInfo_Spool_Dropped(id, spoolTarget));
       }
     }
 
-    // ---
+    catch (final IllegalArgumentException e)
+    {
+      logger.println(Messages.DumpInfo_Spool_Invalid(spoolTarget));
+      logger.print(dump);
+    }
+  }
 
-    return new Environment()
+  /**
+   * Print a line of a section to the job log, folding it into the section
+   * fingerprint.
+   * 
+   * @param logger
+   *          the job log
+   * @param sections
+   *          the per-section fingerprints
+   * @param section
+   *          the section the line belongs to
+   * @param line
+   *          the formatted line
+   */
+  private static void dump(final PrintStream logger, final long[] sections,
+      final int section, final String line)
+  {
+    logger.println(line);
+    sections[section] = DumpInfoHistory.fingerprint(sections[section], line);
+  }
+
+  /**
+   * Append a snapshot of this build to the history. Failures are logged but
+   * never fail the build.
+   * 
+   * @param build
+   *          the build being set up
+   * @param sections
+   *          the per-section fingerprints
+   * @param setUpNanos
+   *          the time spent dumping, in nanoseconds
+   */
+  private static void record(final AbstractBuild<?, ?> build,
+      final long[] sections, final long setUpNanos)
+  {
+    try
     {
-      /* empty implementation */
-    };
+      final DumpInfoHistory history = DumpInfoHistory.getInstance();
+      final JDK jdk = build.getProject().getJDK();
+
+      final long job = history.name(build.getProject().getFullName());
+      final long version = history.name(String.valueOf(Hudson.getVersion()));
+      final long agent = history.name(build.getBuiltOnStr());
+      final long jdkName = history.name(jdk == null ? "" : jdk.getName());
+
+      history.append(new DumpInfoHistory.Record(System.currentTimeMillis(),
+          job, build.getNumber(), setUpNanos, version, agent, jdkName,
+          sections));
+    }
+
+    catch (final IOException e)
+    {
+      LOG.log(Level.WARNING, e.getMessage(), e);
+    }
+
+    catch (final RuntimeException e)
+    {
+      LOG.log(Level.WARNING, e.getMessage(), e);
+    }
+
+    catch (final InternalError e)
+    {
+      // a fault while writing a mapped segment, e.g. on a full disk
+      LOG.log(Level.WARNING, e.getMessage(), e);
+    }
   }
 }
@@ -0,0 +1,594 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Jesse Farinacci
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import hudson.model.Hudson;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only store of per-build snapshots, kept as fixed-layout records in
+ * a series of memory-mapped segment files. Each record only holds fingerprints
+ * and timings, so that trend queries can scan many thousands of builds without
+ * loading any {@link hudson.model.Run} or reading any console log.
+ * 
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+public final class DumpInfoHistory
+{
+  /**
+   * Callback used while scanning the history.
+   */
+  public interface Visitor
+  {
+    /**
+     * Visit a single record, in the order it was appended.
+     * 
+     * @param record
+     *          the record being visited
+     */
+    void visit(Record record);
+  }
+
+  /**
+   * A single, immutable, per-build snapshot.
+   */
+  public static final class Record
+  {
+    private final long timestamp;
+
+    private final int buildNumber;
+
+    private final long setUpNanos;
+
+    private final long job;
+
+    private final long jenkinsVersion;
+
+    private final long agent;
+
+    private final long jdk;
+
+    private final long[] sections;
+
+    /**
+     * @param timestamp
+     *          when the snapshot was taken, in milliseconds since the epoch
+     * @param job
+     *          the fingerprint of the job name
+     * @param buildNumber
+     *          the build number
+     * @param setUpNanos
+     *          the time spent in the wrapper setup, in nanoseconds
+     * @param jenkinsVersion
+     *          the fingerprint of the Jenkins version
+     * @param agent
+     *          the fingerprint of the agent name
+     * @param jdk
+     *          the fingerprint of the JDK name
+     * @param sections
+     *          the per-section fingerprints, indexed by the SECTION_ constants
+     */
+    public Record(final long timestamp, final long job, final int buildNumber,
+        final long setUpNanos, final long jenkinsVersion, final long agent,
+        final long jdk, final long[] sections)
+    {
+      this.timestamp = timestamp;
+      this.job = job;
+      this.buildNumber = buildNumber;
+      this.setUpNanos = setUpNanos;
+      this.jenkinsVersion = jenkinsVersion;
+      this.agent = agent;
+      this.jdk = jdk;
+      this.sections = new long[SECTIONS];
+      System.arraycopy(sections, 0, this.sections, 0,
+          Math.min(SECTIONS, sections.length));
+    }
+
+    public long getTimestamp()
+    {
+      return timestamp;
+    }
+
+    public long getJob()
+    {
+      return job;
+    }
+
+    public int getBuildNumber()
+    {
+      return buildNumber;
+    }
+
+    public long getSetUpNanos()
+    {
+      return setUpNanos;
+    }
+
+    public long getJenkinsVersion()
+    {
+      return jenkinsVersion;
+    }
+
+    public long getAgent()
+    {
+      return agent;
+    }
+
+    public long getJdk()
+    {
+      return jdk;
+    }
+
+    /**
+     * Get the fingerprint of a dumped section.
+     * 
+     * @param section
+     *          one of the SECTION_ constants
+     * @return the section fingerprint, or zero if it was not dumped
+     */
+    public long getSection(final int section)
+    {
+      return sections[section];
+    }
+  }
+
+  public static final int SECTION_COMPUTERS = 0;
+
+  public static final int SECTION_JDKS = 1;
+
+  public static final int SECTION_PLUGINS = 2;
+
+  public static final int SECTION_SYSTEM_PROPERTIES = 3;
+
+  public static final int SECTION_ENVIRONMENT_VARIABLES = 4;
+
+  public static final int SECTION_JNDI = 5;
+
+  public static final int SECTION_TOOLS = 6;
+
+  public static final int SECTION_PLUGIN_DETAILS = 7;
+
+  /**
+   * Number of section slots reserved in every record.
+   */
+  public static final int SECTIONS = 9;
+
+  /**
+   * Names of the sections, indexed by the SECTION_ constants; unused slots
+   * have no name.
+   */
+  private static final String[] SECTION_NAMES = { "computers", "JDKs",
+      "plugins", "system properties", "environment variables", "JNDI",
+      "tools", "plugin details", null };
+
+  /**
+   * Get the name of a section.
+   * 
+   * @param section
+   *          one of the SECTION_ constants
+   * @return the section name, or <code>null</code> for an unused slot
+   */
+  public static String getSectionName(final int section)
+  {
+    return SECTION_NAMES[section];
+  }
+
+  /**
+   * Size of a single record, in bytes.
+   */
+  static final int RECORD_SIZE = 128;
+
+  /**
+   * Number of records in a single segment file.
+   */
+  static final int SEGMENT_RECORDS = 16384;
+
+  /**
+   * Marks a complete record; it is written last so that a torn append is
+   * never visible to readers.
+   */
+  private static final int MAGIC = 0x44494831;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static final String NAMES_FILE = "names.txt";
+
+  private static DumpInfoHistory instance;
+
+  /**
+   * Get the history store rooted under {@code JENKINS_HOME}.
+   * 
+   * @return the shared history store
+   */
+  public static synchronized DumpInfoHistory getInstance()
+  {
+    if (instance == null)
+    {
+      instance = new DumpInfoHistory(new File(Hudson.getInstance()
+          .getRootDir(), "dumpinfo-history"));
+    }
+
+    return instance;
+  }
+
+  /**
+   * Continue a 64-bit FNV-1a fingerprint with the given line.
+   * 
+   * @param fingerprint
+   *          the running fingerprint, or zero to start a new one
+   * @param line
+   *          the line to add
+   * @return the updated fingerprint, never zero
+   */
+  public static long fingerprint(final long fingerprint, final String line)
+  {
+    long hash = fingerprint == 0 ? FNV_OFFSET : fingerprint;
+
+    if (line != null)
+    {
+      for (int i = 0; i < line.length(); i++)
+      {
+        hash ^= line.charAt(i);
+        hash *= FNV_PRIME;
+      }
+    }
+
+    // separate consecutive lines
+    hash ^= '\n';
+    hash *= FNV_PRIME;
+
+    return hash == 0 ? 1 : hash;
+  }
+
+  private final File directory;
+
+  private final Map<Long, String> names = new HashMap<Long, String>();
+
+  private boolean opened;
+
+  private int segment;
+
+  private int position;
+
+  private MappedByteBuffer current;
+
+  /**
+   * @param directory
+   *          the directory holding the segment files
+   */
+  DumpInfoHistory(final File directory)
+  {
+    this.directory = directory;
+  }
+
+  /**
+   * Append a record to the end of the history.
+   * 
+   * @param record
+   *          the record to append
+   * @throws IOException
+   *           if the segment could not be written
+   */
+  public synchronized void append(final Record record) throws IOException
+  {
+    open();
+
+    if (position == SEGMENT_RECORDS)
+    {
+      segment++;
+      position = 0;
+      current = map(segment, FileChannel.MapMode.READ_WRITE);
+    }
+
+    final int offset = position * RECORD_SIZE;
+    current.putInt(offset + 4, record.buildNumber);
+    current.putLong(offset + 8, record.timestamp);
+    current.putLong(offset + 16, record.setUpNanos);
+    current.putLong(offset + 24, record.job);
+    current.putLong(offset + 32, record.jenkinsVersion);
+    current.putLong(offset + 40, record.agent);
+    current.putLong(offset + 48, record.jdk);
+    for (int i = 0; i < SECTIONS; i++)
+    {
+      current.putLong(offset + 56 + i * 8, record.sections[i]);
+    }
+    current.putInt(offset, MAGIC);
+
+    position++;
+  }
+
+  /**
+   * Remember the clear text behind a fingerprint, so that trend pages can
+   * display it. Only the first occurrence of each name is stored.
+   * 
+   * @param name
+   *          the clear text name
+   * @return the fingerprint of the name
+   * @throws IOException
+   *           if the name could not be stored
+   */
+  public synchronized long name(final String name) throws IOException
+  {
+    open();
+
+    final String value = name == null ? "" : name.replaceAll("[\t\r\n]", " ");
+    final long fingerprint = fingerprint(0, value);
+
+    if (!names.containsKey(fingerprint))
+    {
+      final File file = new File(directory, NAMES_FILE);
+
+      // terminate a line torn by a crash, so it does not prefix this one
+      final String separator = isTorn(file) ? "\n" : "";
+
+      final Writer writer = new OutputStreamWriter(new FileOutputStream(file,
+          true), "UTF-8");
+
+      try
+      {
+        writer.write(separator + Long.toHexString(fingerprint) + "\t" + value
+            + "\n");
+      }
+
+      finally
+      {
+        writer.close();
+      }
+
+      names.put(fingerprint, value);
+    }
+
+    return fingerprint;
+  }
+
+  /**
+   * Resolve a fingerprint previously returned by {@link #name(String)}.
+   * 
+   * @param fingerprint
+   *          the fingerprint to resolve
+   * @return the clear text name, or the hexadecimal fingerprint if unknown
+   */
+  public synchronized String resolve(final long fingerprint)
+  {
+    try
+    {
+      open();
+    }
+
+    catch (final IOException e)
+    {
+      /* fall through to the hexadecimal form */
+    }
+
+    final String value = names.get(fingerprint);
+    return value == null ? Long.toHexString(fingerprint) : value;
+  }
+
+  /**
+   * Get the number of records in the history.
+   * 
+   * @return the number of records
+   * @throws IOException
+   *           if the segments could not be read
+   */
+  public synchronized int size() throws IOException
+  {
+    open();
+    return segment * SEGMENT_RECORDS + position;
+  }
+
+  /**
+   * Visit every record, oldest first. Records appended while scanning are not
+   * visited.
+   * 
+   * @param visitor
+   *          the visitor to call for each record
+   * @throws IOException
+   *           if the segments could not be read
+   */
+  public void scan(final Visitor visitor) throws IOException
+  {
+    final int size = size();
+    final long[] sections = new long[SECTIONS];
+
+    for (int s = 0; s * SEGMENT_RECORDS < size; s++)
+    {
+      final ByteBuffer buffer = map(s, FileChannel.MapMode.READ_ONLY);
+      final int records = Math.min(SEGMENT_RECORDS, size - s
+          * SEGMENT_RECORDS);
+
+      for (int r = 0; r < records; r++)
+      {
+        final int offset = r * RECORD_SIZE;
+        if (buffer.getInt(offset) != MAGIC)
+        {
+          continue;
+        }
+
+        for (int i = 0; i < SECTIONS; i++)
+        {
+          sections[i] = buffer.getLong(offset + 56 + i * 8);
+        }
+
+        visitor.visit(new Record(buffer.getLong(offset + 8), buffer
+            .getLong(offset + 24), buffer.getInt(offset + 4), buffer
+            .getLong(offset + 16), buffer.getLong(offset + 32), buffer
+            .getLong(offset + 40), buffer.getLong(offset + 48), sections));
+      }
+    }
+  }
+
+  /**
+   * Locate the end of the history and load the known names, once.
+   */
+  private void open() throws IOException
+  {
+    if (opened)
+    {
+      return;
+    }
+
+    // ---
+
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Unable to create " + directory);
+    }
+
+    while (segmentFile(segment + 1).exists())
+    {
+      segment++;
+    }
+
+    current = map(segment, FileChannel.MapMode.READ_WRITE);
+
+    // records are written in order, so the first free slot can be bisected
+    int low = 0;
+    int high = SEGMENT_RECORDS;
+    while (low < high)
+    {
+      final int middle = (low + high) >>> 1;
+      if (current.getInt(middle * RECORD_SIZE) == MAGIC)
+      {
+        low = middle + 1;
+      }
+      else
+      {
+        high = middle;
+      }
+    }
+    position = low;
+
+    final File file = new File(directory, NAMES_FILE);
+    if (file.exists())
+    {
+      // an unterminated last line was torn by a crash, its value is cut off
+      final boolean torn = isTorn(file);
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(file), "UTF-8"));
+
+      try
+      {
+        String next = reader.readLine();
+        while (next != null)
+        {
+          final String line = next;
+          next = reader.readLine();
+
+          final int tab = line.indexOf('\t');
+          if (tab > 0 && (next != null || !torn))
+          {
+            try
+            {
+              names.put(new BigInteger(line.substring(0, tab), 16)
+                  .longValue(), line.substring(tab + 1));
+            }
+
+            catch (final NumberFormatException e)
+            {
+              /* skip torn line */
+            }
+          }
+        }
+      }
+
+      finally
+      {
+        reader.close();
+      }
+    }
+
+    opened = true;
+  }
+
+  /**
+   * Whether a file does not end with a line separator.
+   */
+  private static boolean isTorn(final File file) throws IOException
+  {
+    if (file.length() == 0)
+    {
+      return false;
+    }
+
+    // ---
+
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try
+    {
+      raf.seek(raf.length() - 1);
+      return raf.read() != '\n';
+    }
+
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  private File segmentFile(final int index)
+  {
+    return new File(directory, String.format("segment-%05d.dat",
+        Integer.valueOf(index)));
+  }
+
+  private MappedByteBuffer map(final int index, final FileChannel.MapMode mode)
+      throws IOException
+  {
+    final RandomAccessFile file = new RandomAccessFile(segmentFile(index),
+        mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+
+    try
+    {
+      // the mapping stays valid after the channel is closed
+      return file.getChannel().map(mode, 0,
+          (long) SEGMENT_RECORDS * RECORD_SIZE);
+    }
+
+    finally
+    {
+      file.close();
+    }
+  }
+}
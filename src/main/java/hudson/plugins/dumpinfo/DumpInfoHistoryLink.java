@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Jesse Farinacci
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trend pages on top of {@link DumpInfoHistory}: when did the dumped
+ * information change, and how much time did dumping cost over time.
+ * 
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+@Extension
+public final class DumpInfoHistoryLink extends ManagementLink
+{
+  /**
+   * A build whose snapshot differed from the previous build of the same job.
+   */
+  public static final class Change
+  {
+    private final DumpInfoHistory.Record record;
+
+    private final String job;
+
+    private final String fields;
+
+    Change(final DumpInfoHistory.Record record, final String job,
+        final String fields)
+    {
+      this.record = record;
+      this.job = job;
+      this.fields = fields;
+    }
+
+    public Date getDate()
+    {
+      return new Date(record.getTimestamp());
+    }
+
+    public String getJob()
+    {
+      return job;
+    }
+
+    public int getBuildNumber()
+    {
+      return record.getBuildNumber();
+    }
+
+    public String getFields()
+    {
+      return fields;
+    }
+  }
+
+  /**
+   * Dumping overhead aggregated over a single day.
+   */
+  public static final class Overhead
+  {
+    private final Date day;
+
+    private int builds;
+
+    private long totalNanos;
+
+    private long maxNanos;
+
+    Overhead(final Date day)
+    {
+      this.day = day;
+    }
+
+    void add(final long nanos)
+    {
+      builds++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public Date getDay()
+    {
+      return day;
+    }
+
+    public int getBuilds()
+    {
+      return builds;
+    }
+
+    public long getAverageMillis()
+    {
+      return TimeUnit.NANOSECONDS.toMillis(totalNanos / Math.max(1, builds));
+    }
+
+    public long getMaxMillis()
+    {
+      return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+    }
+  }
+
+  /**
+   * Maximum number of changes shown, newest first.
+   */
+  private static final int MAX_CHANGES = 100;
+
+  @Override
+  public String getIconFileName()
+  {
+    return "clipboard.gif";
+  }
+
+  @Override
+  public String getUrlName()
+  {
+    return "dumpinfo-history";
+  }
+
+  @Override
+  public String getDisplayName()
+  {
+    return Messages.DumpInfo_History_DisplayName();
+  }
+
+  @Override
+  public String getDescription()
+  {
+    return Messages.DumpInfo_History_Description();
+  }
+
+  /**
+   * Get the most recent changes, newest first.
+   * 
+   * @return the recent changes
+   * @throws IOException
+   *           if the history could not be read
+   */
+  public List<Change> getChanges() throws IOException
+  {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+
+    final DumpInfoHistory history = DumpInfoHistory.getInstance();
+    final Map<Long, DumpInfoHistory.Record> previous = new HashMap<Long, DumpInfoHistory.Record>();
+    final LinkedList<DumpInfoHistory.Record> changed = new LinkedList<DumpInfoHistory.Record>();
+    final Map<DumpInfoHistory.Record, DumpInfoHistory.Record> before = new HashMap<DumpInfoHistory.Record, DumpInfoHistory.Record>();
+
+    history.scan(new DumpInfoHistory.Visitor()
+    {
+      public void visit(final DumpInfoHistory.Record record)
+      {
+        final DumpInfoHistory.Record last = previous.put(
+            Long.valueOf(record.getJob()), record);
+
+        if (last != null && describe(last, record).length() > 0)
+        {
+          changed.addFirst(record);
+          before.put(record, last);
+
+          if (changed.size() > MAX_CHANGES)
+          {
+            before.remove(changed.removeLast());
+          }
+        }
+      }
+    });
+
+    final List<Change> changes = new ArrayList<Change>(changed.size());
+    for (final DumpInfoHistory.Record record : changed)
+    {
+      changes.add(new Change(record, history.resolve(record.getJob()),
+          describe(before.get(record), record)));
+    }
+
+    return changes;
+  }
+
+  /**
+   * Get the dumping overhead per day, newest first.
+   * 
+   * @return the daily overhead
+   * @throws IOException
+   *           if the history could not be read
+   */
+  public List<Overhead> getOverhead() throws IOException
+  {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+
+    final Map<Long, Overhead> days = new TreeMap<Long, Overhead>(
+        Collections.reverseOrder());
+
+    DumpInfoHistory.getInstance().scan(new DumpInfoHistory.Visitor()
+    {
+      public void visit(final DumpInfoHistory.Record record)
+      {
+        final Long day = Long.valueOf(TimeUnit.MILLISECONDS.toDays(record
+            .getTimestamp()));
+
+        Overhead overhead = days.get(day);
+        if (overhead == null)
+        {
+          overhead = new Overhead(new Date(TimeUnit.DAYS.toMillis(day
+              .longValue())));
+          days.put(day, overhead);
+        }
+
+        overhead.add(record.getSetUpNanos());
+      }
+    });
+
+    return new ArrayList<Overhead>(days.values());
+  }
+
+  /**
+   * Describe what differs between two snapshots of the same job.
+   * 
+   * @return a comma separated list of what changed, or an empty string
+   */
+  private static String describe(final DumpInfoHistory.Record last,
+      final DumpInfoHistory.Record record)
+  {
+    final StringBuilder builder = new StringBuilder();
+
+    if (last.getJenkinsVersion() != record.getJenkinsVersion())
+    {
+      append(builder, "Jenkins version");
+    }
+
+    if (last.getAgent() != record.getAgent())
+    {
+      append(builder, "agent");
+    }
+
+    if (last.getJdk() != record.getJdk())
+    {
+      append(builder, "JDK");
+    }
+
+    for (int i = 0; i < DumpInfoHistory.SECTIONS; i++)
+    {
+      // sections which were not dumped in both builds cannot be compared
+      if (last.getSection(i) != 0 && record.getSection(i) != 0
+          && last.getSection(i) != record.getSection(i))
+      {
+        append(builder, DumpInfoHistory.getSectionName(i));
+      }
+    }
+
+    return builder.toString();
+  }
+
+  private static void append(final StringBuilder builder, final String field)
+  {
+    if (builder.length() > 0)
+    {
+      builder.append(", ");
+    }
+
+    builder.append(field);
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Jesse Farinacci
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import hudson.Extension;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The formatted lines of the controller-side sections, collected once per
+ * matrix build and shared by all of its configurations. Any other build gets
+ * a snapshot of its own.
+ * 
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+public final class DumpInfoSnapshot
+{
+  /**
+   * Collects the lines of a snapshot, the first time it is needed.
+   */
+  public interface Collector
+  {
+    /**
+     * Add the controller-side lines to the snapshot.
+     * 
+     * @param snapshot
+     *          the snapshot to fill
+     */
+    void collect(DumpInfoSnapshot snapshot);
+  }
+
+  /**
+   * Forgets the shared snapshot of a matrix build once it has completed.
+   */
+  @Extension
+  public static final class Cleanup extends RunListener<MatrixBuild>
+  {
+    public Cleanup()
+    {
+      super(MatrixBuild.class);
+    }
+
+    @Override
+    public void onCompleted(final MatrixBuild build, final TaskListener listener)
+    {
+      synchronized (SNAPSHOTS)
+      {
+        SNAPSHOTS.remove(build);
+      }
+    }
+  }
+
+  /**
+   * Snapshots of the matrix builds in progress; entries are removed by
+   * {@link Cleanup}.
+   */
+  private static final Map<MatrixBuild, DumpInfoSnapshot> SNAPSHOTS = new HashMap<MatrixBuild, DumpInfoSnapshot>();
+
+  /**
+   * Get the snapshot for the given build. The configurations of a matrix build
+   * share the snapshot of their parent build, collected by the first one to
+   * ask for it; any other build gets a freshly collected snapshot.
+   * 
+   * @param build
+   *          the build being set up
+   * @param collector
+   *          collects the lines when the snapshot is not known yet
+   * @return the snapshot
+   */
+  public static DumpInfoSnapshot of(final AbstractBuild<?, ?> build,
+      final Collector collector)
+  {
+    final MatrixBuild parent = build instanceof MatrixRun ? ((MatrixRun) build)
+        .getParentBuild() : null;
+
+    DumpInfoSnapshot snapshot;
+    if (parent == null)
+    {
+      snapshot = new DumpInfoSnapshot();
+      collector.collect(snapshot);
+      snapshot.collected = true;
+      return snapshot;
+    }
+
+    synchronized (SNAPSHOTS)
+    {
+      snapshot = SNAPSHOTS.get(parent);
+      if (snapshot == null)
+      {
+        snapshot = new DumpInfoSnapshot();
+        SNAPSHOTS.put(parent, snapshot);
+      }
+    }
+
+    // concurrent configurations wait for the first one to collect
+    synchronized (snapshot)
+    {
+      if (!snapshot.collected)
+      {
+        collector.collect(snapshot);
+        snapshot.collected = true;
+      }
+    }
+
+    return snapshot;
+  }
+
+  private final List<List<String>> sections = new ArrayList<List<String>>();
+
+  private boolean collected;
+
+  private DumpInfoSnapshot()
+  {
+    for (int i = 0; i < DumpInfoHistory.SECTIONS; i++)
+    {
+      sections.add(new ArrayList<String>());
+    }
+  }
+
+  /**
+   * Add a formatted line to a section.
+   * 
+   * @param section
+   *          one of the {@link DumpInfoHistory} SECTION_ constants
+   * @param line
+   *          the formatted line
+   */
+  public void add(final int section, final String line)
+  {
+    sections.get(section).add(line);
+  }
+
+  /**
+   * Get the formatted lines of a section.
+   * 
+   * @param section
+   *          one of the {@link DumpInfoHistory} SECTION_ constants
+   * @return the formatted lines, in order
+   */
+  public List<String> getLines(final int section)
+  {
+    return Collections.unmodifiableList(sections.get(section));
+  }
+}
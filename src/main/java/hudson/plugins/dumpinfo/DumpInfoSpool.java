@@ -0,0 +1,419 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Jesse Farinacci
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends rendered dumps to a sink outside of the build log, so that only a
+ * reference line has to be written through the build log. Dumps are queued
+ * and written by a single background thread; when the sink falls behind or
+ * fails, dumps are dropped rather than blocking builds, and the number
+ * dropped is written to the sink once it accepts writes again. Each dump is
+ * framed by {@code === id ===} and {@code === end id ===} lines; a dump cut
+ * off by a failing sink lacks the latter.
+ * 
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+public final class DumpInfoSpool implements Runnable
+{
+  /**
+   * Where spooled dumps end up.
+   */
+  public interface Sink
+  {
+    /**
+     * Open the channel dumps are written to.
+     * 
+     * @return the channel
+     * @throws IOException
+     *           if the channel could not be opened
+     */
+    WritableByteChannel open() throws IOException;
+  }
+
+  /**
+   * Appends to a local spool file.
+   */
+  static final class FileSink implements Sink
+  {
+    private final File file;
+
+    FileSink(final File file)
+    {
+      this.file = file;
+    }
+
+    public WritableByteChannel open() throws IOException
+    {
+      return new FileOutputStream(file, true).getChannel();
+    }
+  }
+
+  /**
+   * Streams to a collector listening on a TCP port of this host.
+   */
+  static final class SocketSink implements Sink
+  {
+    private final InetSocketAddress address;
+
+    SocketSink(final InetSocketAddress address)
+    {
+      this.address = address;
+    }
+
+    public WritableByteChannel open() throws IOException
+    {
+      final SocketChannel channel = SocketChannel.open();
+
+      try
+      {
+        channel.socket().connect(address, CONNECT_TIMEOUT);
+        return channel;
+      }
+
+      catch (final IOException e)
+      {
+        channel.close();
+        throw e;
+      }
+    }
+  }
+
+  private static final Logger LOG = Logger.getLogger(DumpInfoSpool.class
+      .getName());
+
+  /**
+   * Number of dumps which may wait for the sink before new ones are dropped.
+   */
+  static final int CAPACITY = 64;
+
+  /**
+   * Timeout connecting to a collector, in milliseconds.
+   */
+  static final int CONNECT_TIMEOUT = 5000;
+
+  /**
+   * Delay before writing again after the first failure, in milliseconds; it
+   * doubles with every further failure, up to {@link #MAX_BACKOFF}.
+   */
+  static final long MIN_BACKOFF = 1000;
+
+  /**
+   * Longest delay before writing again after a failure, in milliseconds.
+   */
+  static final long MAX_BACKOFF = 60000;
+
+  private static final String TCP = "tcp://";
+
+  /**
+   * A URI scheme; a single letter is a drive and may start a path.
+   */
+  private static final Pattern URI = Pattern
+      .compile("[A-Za-z][A-Za-z0-9+.-]+:");
+
+  /**
+   * The only spool, there is a single target for the whole instance.
+   */
+  private static DumpInfoSpool spool;
+
+  /**
+   * Get the spool for a target, starting it if needed. A spool for another
+   * target is stopped first. A target is either {@code tcp://host:port} for a
+   * collector on this host, or the absolute path of a spool file.
+   * 
+   * @param target
+   *          the spool target
+   * @return the spool
+   * @throws IllegalArgumentException
+   *           if the target is not usable
+   */
+  public static synchronized DumpInfoSpool forTarget(final String target)
+  {
+    if (spool == null || !spool.target.equals(target))
+    {
+      retain(null);
+
+      spool = new DumpInfoSpool(target, createSink(target));
+      spool.thread.start();
+    }
+
+    return spool;
+  }
+
+  /**
+   * Stop the spool unless it writes to the given target, e.g. once the target
+   * was reconfigured. Dumps still queued are dropped.
+   * 
+   * @param target
+   *          the target to keep spooling to, or <code>null</code> for none
+   */
+  public static synchronized void retain(final String target)
+  {
+    if (spool != null && !spool.target.equals(target))
+    {
+      spool.thread.interrupt();
+      spool = null;
+    }
+  }
+
+  /**
+   * Check that a spool target is usable.
+   * 
+   * @param target
+   *          the spool target
+   * @throws IllegalArgumentException
+   *           if the target is not usable
+   */
+  public static void validate(final String target)
+  {
+    createSink(target);
+  }
+
+  private static Sink createSink(final String target)
+  {
+    if (target.startsWith(TCP))
+    {
+      final String address = target.substring(TCP.length());
+      final int colon = address.lastIndexOf(':');
+      if (colon > 0)
+      {
+        try
+        {
+          // only collectors on this host, resolved once
+          final InetAddress host = InetAddress.getByName(address.substring(0,
+              colon));
+          if (host.isLoopbackAddress())
+          {
+            return new SocketSink(new InetSocketAddress(host, Integer
+                .parseInt(address.substring(colon + 1))));
+          }
+        }
+
+        catch (final UnknownHostException e)
+        {
+          /* not a host, fall through */
+        }
+
+        catch (final IllegalArgumentException e)
+        {
+          /* not a port, fall through */
+        }
+      }
+
+      throw new IllegalArgumentException(target);
+    }
+
+    // a misspelt URI, e.g. tcp:/host:port, or a path relative to whatever
+    // directory the master was started from
+    final File file = new File(target);
+    if (URI.matcher(target).lookingAt() || !file.isAbsolute())
+    {
+      throw new IllegalArgumentException(target);
+    }
+
+    return new FileSink(file);
+  }
+
+  private final String target;
+
+  private final Sink sink;
+
+  private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<ByteBuffer>(
+      CAPACITY);
+
+  private final AtomicInteger dropped = new AtomicInteger();
+
+  private final Thread thread;
+
+  private WritableByteChannel channel;
+
+  private DumpInfoSpool(final String target, final Sink sink)
+  {
+    this.target = target;
+    this.sink = sink;
+
+    thread = new Thread(this, "DumpInfo spool " + target);
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Get the target this spool writes to.
+   * 
+   * @return the spool target
+   */
+  public String getTarget()
+  {
+    return target;
+  }
+
+  /**
+   * Queue a rendered dump without blocking.
+   * 
+   * @param id
+   *          the identifier of the dump, written in front of and after it
+   * @param dump
+   *          the rendered dump
+   * @return whether the dump was queued, <code>false</code> if it was dropped
+   *         because the sink is falling behind
+   */
+  public boolean offer(final String id, final String dump)
+  {
+    final ByteBuffer buffer;
+
+    try
+    {
+      buffer = ByteBuffer.wrap(new StringBuilder().append("=== ").append(id)
+          .append(" ===\n").append(dump).append("=== end ").append(id)
+          .append(" ===\n").toString().getBytes("UTF-8"));
+    }
+
+    catch (final UnsupportedEncodingException e)
+    {
+      throw new IllegalStateException(e);
+    }
+
+    if (queue.offer(buffer))
+    {
+      return true;
+    }
+
+    dropped.incrementAndGet();
+    return false;
+  }
+
+  public void run()
+  {
+    int failures = 0;
+
+    while (true)
+    {
+      final ByteBuffer buffer;
+
+      try
+      {
+        buffer = queue.take();
+      }
+
+      catch (final InterruptedException e)
+      {
+        break;
+      }
+
+      try
+      {
+        // report the dumps dropped since the last write, in the sink itself
+        final int count = dropped.get();
+        if (count > 0)
+        {
+          write(ByteBuffer.wrap(("=== dropped " + count + " dumps ===\n")
+              .getBytes("UTF-8")));
+          dropped.addAndGet(-count);
+        }
+
+        write(buffer);
+        failures = 0;
+      }
+
+      catch (final IOException e)
+      {
+        dropped.incrementAndGet();
+        close();
+
+        // interrupted channels are closed, the spool is being stopped
+        if (Thread.currentThread().isInterrupted())
+        {
+          break;
+        }
+
+        // warn once per outage, not once per dump
+        if (failures++ == 0)
+        {
+          LOG.log(Level.WARNING, target + ": " + e.getMessage(), e);
+        }
+
+        try
+        {
+          Thread.sleep(Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(
+              failures - 1, 16)));
+        }
+
+        catch (final InterruptedException ie)
+        {
+          break;
+        }
+      }
+    }
+
+    close();
+  }
+
+  private void write(final ByteBuffer buffer) throws IOException
+  {
+    if (channel == null)
+    {
+      channel = sink.open();
+    }
+
+    while (buffer.hasRemaining())
+    {
+      channel.write(buffer);
+    }
+  }
+
+  private void close()
+  {
+    if (channel != null)
+    {
+      try
+      {
+        channel.close();
+      }
+
+      catch (final IOException e)
+      {
+        /* already broken */
+      }
+
+      channel = null;
+    }
+  }
+}
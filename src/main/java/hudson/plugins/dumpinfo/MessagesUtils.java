@@ -28,6 +28,7 @@ import hudson.PluginWrapper;
 import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.JDK;
+import hudson.tools.ToolInstallation;
 
 /**
  * Various utility functions for working with localized Messages.
@@ -131,6 +132,124 @@ public final class MessagesUtils
         pluginWrapper.getVersion(), pluginWrapper.getUrl());
   }
 
+  /**
+   * Format the details of a PluginWrapper instance for output.
+   * 
+   * @param pluginWrapper
+   *          the plugin wrapper instance to format
+   * @param archiveSize
+   *          the size of the archive the plugin was installed from, in bytes,
+   *          or -1 if unknown
+   * @param loadedClasses
+   *          the number of classes loaded by the plugin, or -1 if unknown
+   * @return the formatted string
+   * 
+   * @see Messages#DumpInfo_Plugin_Details(Object, Object, Object, Object,
+   *      Object, Object)
+   */
+  public static String formatDetails(final PluginWrapper pluginWrapper,
+      final long archiveSize, final int loadedClasses)
+  {
+    if (pluginWrapper == null)
+    {
+      return null;
+    }
+
+    // ---
+
+    final StringBuilder state = new StringBuilder();
+    state.append(pluginWrapper.isEnabled() ? Messages
+        .DumpInfo_Plugin_Enabled() : Messages.DumpInfo_Plugin_Disabled());
+    state.append(", ").append(
+        pluginWrapper.isActive() ? Messages.DumpInfo_Plugin_Active()
+            : Messages.DumpInfo_Plugin_Inactive());
+    if (pluginWrapper.isPinned())
+    {
+      state.append(", ").append(Messages.DumpInfo_Plugin_Pinned());
+    }
+
+    final StringBuilder dependencies = new StringBuilder();
+    for (final PluginWrapper.Dependency dependency : pluginWrapper
+        .getDependencies())
+    {
+      dependencies.append(dependencies.length() > 0 ? ", " : "").append(
+          Messages.DumpInfo_Plugin_Dependency(dependency.shortName,
+              dependency.version));
+    }
+    for (final PluginWrapper.Dependency dependency : pluginWrapper
+        .getOptionalDependencies())
+    {
+      dependencies.append(dependencies.length() > 0 ? ", " : "").append(
+          Messages.DumpInfo_Plugin_Dependency_Optional(dependency.shortName,
+              dependency.version));
+    }
+
+    return Messages.DumpInfo_Plugin_Details(pluginWrapper.getShortName(),
+        pluginWrapper.getVersion(), state, archiveSize < 0 ? "?" : Long
+            .valueOf(archiveSize), loadedClasses < 0 ? "?" : Integer
+            .valueOf(loadedClasses), dependencies.length() == 0 ? "-"
+            : dependencies);
+  }
+
+  /**
+   * Format a ToolInstallation instance, as resolved on a node, for output.
+   * 
+   * @param installation
+   *          the tool installation to format
+   * @param home
+   *          the home of the tool on the node
+   * @param version
+   *          the version found in the home, an empty string if unknown, or
+   *          <code>null</code> if the home does not exist
+   * @return the formatted string
+   * 
+   * @see Messages#DumpInfo_Tool_Found(Object, Object, Object, Object)
+   * @see Messages#DumpInfo_Tool_Missing(Object, Object, Object)
+   */
+  public static String format(final ToolInstallation installation,
+      final String home, final String version)
+  {
+    if (installation == null)
+    {
+      return null;
+    }
+
+    // ---
+
+    if (version == null)
+    {
+      return Messages.DumpInfo_Tool_Missing(installation.getDescriptor()
+          .getDisplayName(), installation.getName(), home);
+    }
+
+    return Messages.DumpInfo_Tool_Found(installation.getDescriptor()
+        .getDisplayName(), installation.getName(),
+        version.length() == 0 ? "?" : version, home);
+  }
+
+  /**
+   * Format a ToolInstallation instance which is auto-installed to a location
+   * that cannot be told without running its installer.
+   * 
+   * @param installation
+   *          the tool installation to format
+   * @return the formatted string
+   * 
+   * @see Messages#DumpInfo_Tool_Unverified(Object, Object)
+   */
+  public static String formatUnverified(final ToolInstallation installation)
+  {
+    if (installation == null)
+    {
+      return null;
+    }
+
+    // ---
+
+    return Messages.DumpInfo_Tool_Unverified(installation.getDescriptor()
+        .getDisplayName(), installation.getName());
+  }
+
   /**
    * Format a system environment variable.
    * 
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Jesse Farinacci
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import hudson.remoting.Callable;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Collects the node-specific sections in a single call to the node which
+ * executes the build.
+ * 
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+public final class NodeSnapshot implements
+    Callable<NodeSnapshot, RuntimeException>
+{
+  private static final long serialVersionUID = 1L;
+
+  private final boolean dumpSystemProperties;
+
+  private final boolean dumpEnvironmentVariables;
+
+  private SortedMap<String, String> systemProperties;
+
+  private SortedMap<String, String> environmentVariables;
+
+  /**
+   * @param dumpSystemProperties
+   *          whether or not to collect the system properties of the node
+   * @param dumpEnvironmentVariables
+   *          whether or not to collect the environment variables of the node
+   */
+  public NodeSnapshot(final boolean dumpSystemProperties,
+      final boolean dumpEnvironmentVariables)
+  {
+    this.dumpSystemProperties = dumpSystemProperties;
+    this.dumpEnvironmentVariables = dumpEnvironmentVariables;
+  }
+
+  /**
+   * Collect the requested sections. On the controller this hands out the
+   * cached sorted snapshots of {@link SystemUtils} without copying them; on an
+   * agent they are only copied once, to be sent back.
+   */
+  public NodeSnapshot call()
+  {
+    if (dumpSystemProperties)
+    {
+      systemProperties = SystemUtils.getSystemProperties();
+    }
+
+    if (dumpEnvironmentVariables)
+    {
+      environmentVariables = SystemUtils.getEnvironmentVariables();
+    }
+
+    return this;
+  }
+
+  /**
+   * Get a sorted iterator over the system properties of the node.
+   * 
+   * @return the sorted system properties iterator, empty if not collected
+   */
+  public Iterator<Map.Entry<String, String>> iterateSystemProperties()
+  {
+    return iterate(systemProperties);
+  }
+
+  /**
+   * Get a sorted iterator over the environment variables of the node.
+   * 
+   * @return the sorted environment variables iterator, empty if not collected
+   */
+  public Iterator<Map.Entry<String, String>> iterateEnvironmentVariables()
+  {
+    return iterate(environmentVariables);
+  }
+
+  private static Iterator<Map.Entry<String, String>> iterate(
+      final SortedMap<String, String> map)
+  {
+    if (map == null)
+    {
+      return Collections.<String, String> emptyMap().entrySet().iterator();
+    }
+
+    return map.entrySet().iterator();
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Jesse Farinacci
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import hudson.PluginManager;
+import hudson.PluginWrapper;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Various utility functions for working with {@link hudson.PluginWrapper}
+ * instances.
+ * 
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+public final class PluginUtils
+{
+  /**
+   * The private class vector of {@link ClassLoader}, or <code>null</code> if
+   * it is not available on this JVM.
+   */
+  private static final Field CLASSES = getClassesField();
+
+  /**
+   * The plugin manager state the memoized order and sizes were computed from.
+   */
+  private static List<String> state;
+
+  /**
+   * The memoized plugins, in dependency order.
+   */
+  private static List<PluginWrapper> ordered;
+
+  /**
+   * The memoized archive sizes, in the same order, -1 if unknown.
+   */
+  private static long[] archiveSizes;
+
+  /**
+   * Get the formatted details of every plugin, dependencies first. The order
+   * and archive sizes are computed once per plugin manager state, i.e. until a
+   * plugin is added, removed, updated, enabled, disabled, pinned or unpinned;
+   * the number of loaded classes keeps growing, so it is read every time.
+   * 
+   * @param pluginManager
+   *          the plugin manager to inspect
+   * @return the formatted plugin details, in dependency order
+   */
+  public static synchronized List<String> getPluginDetails(
+      final PluginManager pluginManager)
+  {
+    final SortedMap<String, PluginWrapper> byName = new TreeMap<String, PluginWrapper>();
+    final List<String> current = new ArrayList<String>();
+
+    for (final PluginWrapper plugin : pluginManager.getPlugins())
+    {
+      byName.put(plugin.getShortName(), plugin);
+    }
+
+    for (final PluginWrapper plugin : byName.values())
+    {
+      current.add(plugin.getShortName() + " " + plugin.getVersion() + " "
+          + plugin.isEnabled() + " " + plugin.isActive() + " "
+          + plugin.isPinned());
+    }
+
+    if (!current.equals(state))
+    {
+      final List<PluginWrapper> plugins = new ArrayList<PluginWrapper>(
+          byName.size());
+      final Set<String> visited = new HashSet<String>();
+      for (final String shortName : byName.keySet())
+      {
+        visit(shortName, byName, visited, plugins);
+      }
+
+      final long[] sizes = new long[plugins.size()];
+      for (int i = 0; i < sizes.length; i++)
+      {
+        final File archive = getArchive(pluginManager, plugins.get(i));
+        sizes[i] = archive == null ? -1 : archive.length();
+      }
+
+      state = current;
+      ordered = plugins;
+      archiveSizes = sizes;
+    }
+
+    // ---
+
+    final List<String> lines = new ArrayList<String>(ordered.size());
+    for (int i = 0; i < ordered.size(); i++)
+    {
+      final PluginWrapper plugin = ordered.get(i);
+      lines.add(MessagesUtils.formatDetails(plugin, archiveSizes[i],
+          getLoadedClasses(plugin)));
+    }
+
+    return lines;
+  }
+
+  /**
+   * Depth-first walk of the dependency graph, adding each plugin after all of
+   * its dependencies.
+   */
+  private static void visit(final String shortName,
+      final SortedMap<String, PluginWrapper> plugins,
+      final Set<String> visited, final List<PluginWrapper> ordered)
+  {
+    final PluginWrapper plugin = plugins.get(shortName);
+
+    // unknown dependencies are not installed, cycles are cut
+    if (plugin == null || !visited.add(shortName))
+    {
+      return;
+    }
+
+    // ---
+
+    final List<PluginWrapper.Dependency> dependencies = new ArrayList<PluginWrapper.Dependency>(
+        plugin.getDependencies());
+    dependencies.addAll(plugin.getOptionalDependencies());
+
+    for (final PluginWrapper.Dependency dependency : dependencies)
+    {
+      visit(dependency.shortName, plugins, visited, ordered);
+    }
+
+    ordered.add(plugin);
+  }
+
+  /**
+   * Get the archive a plugin was installed from.
+   * 
+   * @return the archive, or <code>null</code> if it cannot be found
+   */
+  private static File getArchive(final PluginManager pluginManager,
+      final PluginWrapper plugin)
+  {
+    for (final String extension : new String[] { ".hpi", ".jpi" })
+    {
+      final File archive = new File(pluginManager.rootDir,
+          plugin.getShortName() + extension);
+      if (archive.isFile())
+      {
+        return archive;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Get the number of classes loaded by the class loader of a plugin. The JDK
+   * offers no public API for this, so the private class vector of
+   * {@link ClassLoader} is read.
+   * 
+   * @return the number of loaded classes, or -1 if unknown
+   */
+  private static int getLoadedClasses(final PluginWrapper plugin)
+  {
+    if (CLASSES == null)
+    {
+      return -1;
+    }
+
+    // ---
+
+    try
+    {
+      final Object classes = CLASSES.get(plugin.classLoader);
+      if (classes instanceof Collection<?>)
+      {
+        synchronized (classes)
+        {
+          return ((Collection<?>) classes).size();
+        }
+      }
+    }
+
+    catch (final IllegalAccessException e)
+    {
+      /* made accessible, cannot happen */
+    }
+
+    return -1;
+  }
+
+  /**
+   * Resolve the private class vector of {@link ClassLoader}, once.
+   * 
+   * @return the field, or <code>null</code> if not available on this JVM
+   */
+  private static Field getClassesField()
+  {
+    try
+    {
+      final Field field = ClassLoader.class.getDeclaredField("classes");
+      field.setAccessible(true);
+      return field;
+    }
+
+    catch (final Exception e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Static-only access.
+   */
+  private PluginUtils()
+  {
+    /* static-only access */
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Jesse Farinacci
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import hudson.remoting.Callable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A lightweight thread-sampling profiler, running inside the JVM of the node
+ * which executes the build. Stack traces of runnable and blocked threads are
+ * sampled at a fixed interval and counted per distinct stack as they are
+ * taken; the counts are either written as collapsed stacks (the input format
+ * of flame graph tools) or simply discarded.
+ * 
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+public final class StackSampler implements Runnable
+{
+  /**
+   * Start sampling on the node.
+   */
+  public static final class Start implements Callable<Void, RuntimeException>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+
+    private final long intervalMillis;
+
+    /**
+     * @param id
+     *          the identifier of the sampler to start
+     * @param intervalMillis
+     *          the sampling interval, in milliseconds
+     */
+    public Start(final String id, final long intervalMillis)
+    {
+      this.id = id;
+      this.intervalMillis = intervalMillis;
+    }
+
+    public Void call()
+    {
+      final StackSampler sampler = new StackSampler(id, intervalMillis);
+
+      // publish only once the thread is running, so Stop can always join it
+      sampler.thread.start();
+      SAMPLERS.put(id, sampler);
+
+      return null;
+    }
+  }
+
+  /**
+   * Stop sampling on the node, optionally collecting the samples.
+   */
+  public static final class Stop implements Callable<String, RuntimeException>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+
+    private final boolean collect;
+
+    /**
+     * @param id
+     *          the identifier of the sampler to stop
+     * @param collect
+     *          whether to aggregate the samples or to discard them
+     */
+    public Stop(final String id, final boolean collect)
+    {
+      this.id = id;
+      this.collect = collect;
+    }
+
+    public String call()
+    {
+      final StackSampler sampler = SAMPLERS.remove(id);
+      if (sampler == null)
+      {
+        return null;
+      }
+
+      // ---
+
+      sampler.stop();
+      return collect ? sampler.collapse() : null;
+    }
+  }
+
+  /**
+   * Shortest interval between two samples, in milliseconds; every sample walks
+   * the stacks of all the threads of the JVM.
+   */
+  static final int MIN_INTERVAL = 10;
+
+  /**
+   * Maximum number of frames kept per stack, counted from the innermost frame.
+   */
+  static final int MAX_DEPTH = 64;
+
+  /**
+   * Maximum number of distinct stacks counted; further stacks are counted
+   * under {@link #OTHER}.
+   */
+  static final int MAX_STACKS = 4096;
+
+  private static final String OTHER = "[other]";
+
+  /**
+   * Samplers currently running in this JVM, by identifier.
+   */
+  private static final Map<String, StackSampler> SAMPLERS = new ConcurrentHashMap<String, StackSampler>();
+
+  private final long intervalMillis;
+
+  /**
+   * Number of samples per collapsed stack.
+   */
+  private final Map<String, int[]> counts = new HashMap<String, int[]>();
+
+  private final Thread thread;
+
+  private volatile boolean running = true;
+
+  private StackSampler(final String id, final long intervalMillis)
+  {
+    this.intervalMillis = Math.max(MIN_INTERVAL, intervalMillis);
+
+    thread = new Thread(this, "DumpInfo stack sampler " + id);
+    thread.setDaemon(true);
+  }
+
+  public void run()
+  {
+    final Thread self = Thread.currentThread();
+
+    while (running)
+    {
+      try
+      {
+        Thread.sleep(intervalMillis);
+      }
+
+      catch (final InterruptedException e)
+      {
+        return;
+      }
+
+      for (final Map.Entry<Thread, StackTraceElement[]> entry : Thread
+          .getAllStackTraces().entrySet())
+      {
+        if (entry.getKey() != self && entry.getValue().length > 0
+            && isSampled(entry.getKey().getState()))
+        {
+          add(format(entry.getValue()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the counted samples as collapsed stacks, one
+   * {@code frame;frame;frame count} line per distinct stack.
+   * 
+   * @return the collapsed stacks
+   */
+  synchronized String collapse()
+  {
+    final StringBuilder builder = new StringBuilder();
+
+    for (final Map.Entry<String, int[]> entry : new TreeMap<String, int[]>(
+        counts).entrySet())
+    {
+      builder.append(entry.getKey()).append(' ').append(entry.getValue()[0])
+          .append('\n');
+    }
+
+    return builder.toString();
+  }
+
+  private synchronized void add(final String stack)
+  {
+    int[] count = counts.get(stack);
+    if (count == null)
+    {
+      final String key = counts.size() < MAX_STACKS ? stack : OTHER;
+
+      count = counts.get(key);
+      if (count == null)
+      {
+        count = new int[1];
+        counts.put(key, count);
+      }
+    }
+
+    count[0]++;
+  }
+
+  private void stop()
+  {
+    running = false;
+    thread.interrupt();
+
+    try
+    {
+      thread.join();
+    }
+
+    catch (final InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Waiting threads are idle, sampling them would only bury the busy ones.
+   */
+  private static boolean isSampled(final Thread.State state)
+  {
+    return state != Thread.State.WAITING
+        && state != Thread.State.TIMED_WAITING;
+  }
+
+  /**
+   * Format a stack trace root first, as flame graph tools expect, keeping at
+   * most {@link #MAX_DEPTH} of the innermost frames.
+   */
+  private static String format(final StackTraceElement[] stack)
+  {
+    final StringBuilder builder = new StringBuilder();
+
+    for (int i = Math.min(stack.length, MAX_DEPTH) - 1; i >= 0; i--)
+    {
+      if (builder.length() > 0)
+      {
+        builder.append(';');
+      }
+
+      builder.append(stack[i].getClassName()).append('.')
+          .append(stack[i].getMethodName());
+    }
+
+    return builder.toString();
+  }
+}
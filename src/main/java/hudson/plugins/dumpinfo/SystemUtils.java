@@ -24,10 +24,11 @@
 
 package hudson.plugins.dumpinfo;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 /**
  * Various utility functions for working with {@link java.lang.System}.
@@ -37,43 +38,101 @@ import java.util.TreeSet;
  */
 public final class SystemUtils
 {
+  /**
+   * The process environment never changes, so it is sorted once.
+   */
+  private static final SortedMap<String, String> ENVIRONMENT_VARIABLES = Collections
+      .unmodifiableSortedMap(new TreeMap<String, String>(System.getenv()));
+
+  /**
+   * The system properties the sorted copy was built from.
+   */
+  private static Properties properties;
+
+  /**
+   * The sorted copy of the system properties.
+   */
+  private static SortedMap<String, String> systemProperties;
+
   /**
    * Get a sorted map of system environment variables.
    * 
-   * @return the sorted environment variables
+   * @return the sorted environment variables, which cannot be modified
    * 
    * @see System#getenv()
    */
   public static SortedMap<String, String> getEnvironmentVariables()
   {
-    final SortedMap<String, String> map = new TreeMap<String, String>();
+    return ENVIRONMENT_VARIABLES;
+  }
 
-    for (final String key : new TreeSet<String>(System.getenv().keySet()))
+  /**
+   * Get a sorted map of system properties. The sorted copy is only rebuilt
+   * when the system properties have changed since the previous call.
+   * 
+   * @return the sorted system properties, which cannot be modified
+   * 
+   * @See {@link System#getProperties()}
+   */
+  public static synchronized SortedMap<String, String> getSystemProperties()
+  {
+    final Properties current = System.getProperties();
+
+    // the table is locked while comparing and copying, so it cannot change
+    // underneath
+    synchronized (current)
     {
-      map.put(key, System.getenv(key));
+      if (current != properties || !isCopyOf(systemProperties, current))
+      {
+        final SortedMap<String, String> map = new TreeMap<String, String>();
+        for (final Map.Entry<Object, Object> entry : current.entrySet())
+        {
+          if (entry.getKey() instanceof String
+              && entry.getValue() instanceof String)
+          {
+            map.put((String) entry.getKey(), (String) entry.getValue());
+          }
+        }
+
+        properties = current;
+        systemProperties = Collections.unmodifiableSortedMap(map);
+      }
     }
 
-    return map;
+    return systemProperties;
   }
 
   /**
-   * Get a sorted map of system properties.
-   * 
-   * @return the sorted system properties
-   * 
-   * @See {@link System#getProperties()}
+   * Whether a copy holds exactly the string entries of the system properties.
+   * {@link Properties} keeps no modification count, so every entry is
+   * compared; unlike copying, this neither allocates nor sorts.
    */
-  public static SortedMap<String, String> getSystemProperties()
+  private static boolean isCopyOf(final Map<String, String> copy,
+      final Properties properties)
   {
-    final SortedMap<String, String> map = new TreeMap<String, String>();
+    if (copy == null)
+    {
+      return false;
+    }
+
+    // ---
 
-    final Properties properties = System.getProperties();
-    for (final Object key : properties.keySet())
+    int size = 0;
+    for (final Map.Entry<Object, Object> entry : properties.entrySet())
     {
-      map.put(key.toString(), properties.getProperty(key.toString()).toString());
+      if (entry.getKey() instanceof String
+          && entry.getValue() instanceof String)
+      {
+        if (!entry.getValue().equals(copy.get(entry.getKey())))
+        {
+          return false;
+        }
+
+        size++;
+      }
     }
 
-    return map;
+    return size == copy.size();
   }
 
   /**
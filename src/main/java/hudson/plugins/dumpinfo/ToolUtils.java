@@ -0,0 +1,379 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2011, Jesse Farinacci
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.tools.CommandInstaller;
+import hudson.tools.DownloadFromUrlInstaller;
+import hudson.tools.InstallSourceProperty;
+import hudson.tools.JDKInstaller;
+import hudson.tools.ToolDescriptor;
+import hudson.tools.ToolInstallation;
+import hudson.tools.ToolInstaller;
+import hudson.tools.ToolLocationNodeProperty;
+import hudson.tools.ZipExtractionInstaller;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * Various utility functions for working with
+ * {@link hudson.tools.ToolInstallation} instances, as seen by the node which
+ * executes the build.
+ * 
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+public final class ToolUtils
+{
+  /**
+   * Checks, on the node, whether each tool home exists and which version it
+   * holds.
+   */
+  private static final class Probe implements
+      Callable<ArrayList<String>, RuntimeException>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<String> homes;
+
+    Probe(final ArrayList<String> homes)
+    {
+      this.homes = homes;
+    }
+
+    /**
+     * @return the version found in each home, an empty string if unknown, or
+     *         {@code null} if the home does not exist
+     */
+    public ArrayList<String> call()
+    {
+      final ArrayList<String> versions = new ArrayList<String>(homes.size());
+
+      for (final String home : homes)
+      {
+        final File directory = home == null ? null : new File(home);
+        if (directory != null && directory.isDirectory())
+        {
+          versions.add(version(directory));
+        }
+        else
+        {
+          versions.add(null);
+        }
+      }
+
+      return versions;
+    }
+  }
+
+  /**
+   * Get the formatted tool installations of a node. Homes are resolved with
+   * the node properties and tool installers taken into account, and probed in
+   * a single call to the node.
+   * 
+   * @param node
+   *          the node executing the build
+   * @param channel
+   *          the channel to the node
+   * @return the formatted tool installations
+   * @throws IOException
+   *           if the node could not be probed
+   * @throws InterruptedException
+   *           if interrupted while probing the node
+   */
+  public static List<String> getToolInstallations(final Node node,
+      final VirtualChannel channel) throws IOException, InterruptedException
+  {
+    final List<ToolInstallation> installations = new ArrayList<ToolInstallation>();
+    final ArrayList<String> homes = new ArrayList<String>();
+
+    for (final ToolDescriptor<?> descriptor : ToolInstallation.all())
+    {
+      for (final ToolInstallation installation : descriptor.getInstallations())
+      {
+        installations.add(installation);
+        homes.add(getHome(node, installation));
+      }
+    }
+
+    if (homes.isEmpty())
+    {
+      return Collections.emptyList();
+    }
+
+    // ---
+
+    final List<String> versions = channel.call(new Probe(homes));
+
+    final List<String> lines = new ArrayList<String>(installations.size());
+    for (int i = 0; i < installations.size(); i++)
+    {
+      lines.add(homes.get(i) == null ? MessagesUtils
+          .formatUnverified(installations.get(i)) : MessagesUtils.format(
+          installations.get(i), homes.get(i), versions.get(i)));
+    }
+
+    return lines;
+  }
+
+  /**
+   * Resolve the home of a tool on a node the way the build would: where an
+   * applicable installer installs it, else the tool locations configured on
+   * the node and then globally. No installer is actually run.
+   * 
+   * @param node
+   *          the node to resolve the home for
+   * @param installation
+   *          the tool to resolve the home of
+   * @return the home of the tool on the node, or <code>null</code> if it is
+   *         auto-installed by an installer whose location cannot be told
+   */
+  private static String getHome(final Node node,
+      final ToolInstallation installation)
+  {
+    final InstallSourceProperty installSource = installation.getProperties()
+        .get(InstallSourceProperty.class);
+    final FilePath root = node.getRootPath();
+    if (installSource != null && root != null)
+    {
+      for (final ToolInstaller installer : installSource.installers)
+      {
+        if (installer.appliesTo(node))
+        {
+          final FilePath home = getInstallLocation(root, installer,
+              installation);
+          return home == null ? null : home.getRemote();
+        }
+      }
+    }
+
+    final ToolLocationNodeProperty nodeProperty = node.getNodeProperties().get(
+        ToolLocationNodeProperty.class);
+    if (nodeProperty != null)
+    {
+      final String home = nodeProperty.getHome(installation);
+      if (home != null)
+      {
+        return home;
+      }
+    }
+
+    final ToolLocationNodeProperty globalProperty = Hudson.getInstance()
+        .getGlobalNodeProperties().get(ToolLocationNodeProperty.class);
+    if (globalProperty != null)
+    {
+      final String home = globalProperty.getHome(installation);
+      if (home != null)
+      {
+        return home;
+      }
+    }
+
+    // null is reserved for auto-installed tools of an unknown location
+    return Util.fixNull(installation.getHome());
+  }
+
+  /**
+   * Get where an installer installs a tool, following the default location of
+   * {@link ToolInstaller}: the configured home, or a directory named after
+   * the tool, under the {@code tools} directory of the node.
+   * 
+   * @return the location, or <code>null</code> for installers which choose
+   *         their own
+   */
+  private static FilePath getInstallLocation(final FilePath root,
+      final ToolInstaller installer, final ToolInstallation installation)
+  {
+    String home = Util.fixEmptyAndTrim(installation.getHome());
+    if (home == null)
+    {
+      home = sanitize(installation.getDescriptor().getId())
+          + File.separatorChar + sanitize(installation.getName());
+    }
+
+    final FilePath location = root.child("tools").child(home);
+
+    if (installer instanceof DownloadFromUrlInstaller
+        || installer instanceof JDKInstaller)
+    {
+      return location;
+    }
+
+    if (installer instanceof ZipExtractionInstaller)
+    {
+      final String subdir = ((ZipExtractionInstaller) installer).getSubdir();
+      return subdir == null ? location : location.child(subdir);
+    }
+
+    if (installer instanceof CommandInstaller)
+    {
+      return location.child(((CommandInstaller) installer).getToolHome());
+    }
+
+    return null;
+  }
+
+  private static String sanitize(final String name)
+  {
+    return name.replaceAll("[^A-Za-z0-9_.-]+", "_");
+  }
+
+  /**
+   * Guess the version of the tool installed in a directory, from the files
+   * well-known JDK, Maven and Ant distributions ship.
+   * 
+   * @param home
+   *          the tool home
+   * @return the version, or an empty string if unknown
+   */
+  private static String version(final File home)
+  {
+    try
+    {
+      // JDK 1.7 and later
+      final String java = property(new FileInputStream(new File(home,
+          "release")), "JAVA_VERSION");
+      if (java != null)
+      {
+        return java;
+      }
+    }
+
+    catch (final IOException e)
+    {
+      /* not a JDK, fall through */
+    }
+
+    final File lib = new File(home, "lib");
+    final String[] names = lib.list();
+    if (names == null)
+    {
+      return "";
+    }
+
+    // ---
+
+    for (final String name : names)
+    {
+      // Maven 3 and Maven 2 respectively
+      if (name.startsWith("maven-core-") && name.endsWith(".jar"))
+      {
+        return name.substring("maven-core-".length(), name.length() - 4);
+      }
+
+      if (name.startsWith("maven-") && name.endsWith("-uber.jar"))
+      {
+        return name.substring("maven-".length(), name.length() - 9);
+      }
+
+      if (name.equals("ant.jar"))
+      {
+        try
+        {
+          final JarFile jar = new JarFile(new File(lib, name));
+
+          try
+          {
+            final ZipEntry entry = jar
+                .getEntry("org/apache/tools/ant/version.txt");
+            if (entry != null)
+            {
+              final String ant = property(jar.getInputStream(entry), "VERSION");
+              if (ant != null)
+              {
+                return ant;
+              }
+            }
+          }
+
+          finally
+          {
+            jar.close();
+          }
+        }
+
+        catch (final IOException e)
+        {
+          /* unreadable, fall through */
+        }
+      }
+    }
+
+    return "";
+  }
+
+  /**
+   * Read a {@code KEY=value} or {@code KEY="value"} line from a stream, which
+   * is always closed.
+   */
+  private static String property(final InputStream stream, final String key)
+      throws IOException
+  {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        stream, "UTF-8"));
+
+    try
+    {
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        if (line.startsWith(key + "="))
+        {
+          return line.substring(key.length() + 1).replace("\"", "").trim();
+        }
+      }
+
+      return null;
+    }
+
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  /**
+   * Static-only access.
+   */
+  private ToolUtils()
+  {
+    /* static-only access */
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Jesse Farinacci
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.dumpinfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DumpInfoHistory}, against a temporary directory.
+ *
+ * @author <a href="mailto:jieryn@gmail.com">Jesse Farinacci</a>
+ * @since 1.2
+ */
+public class DumpInfoHistoryTest
+{
+  /**
+   * Per-test history directory; surefire runs methods in parallel.
+   */
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    directory = File.createTempFile("dumpinfo-history", "");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdirs());
+  }
+
+  @After
+  public void tearDown()
+  {
+    for (final File file : directory.listFiles())
+    {
+      file.delete();
+    }
+
+    directory.delete();
+  }
+
+  private static DumpInfoHistory.Record record(final int buildNumber)
+  {
+    final long[] sections = new long[DumpInfoHistory.SECTIONS];
+    for (int i = 0; i < sections.length; i++)
+    {
+      sections[i] = buildNumber * 100L + i;
+    }
+
+    return new DumpInfoHistory.Record(1000L + buildNumber, 11L, buildNumber,
+        2000L + buildNumber, 12L, 13L, 14L, sections);
+  }
+
+  private static List<DumpInfoHistory.Record> scan(
+      final DumpInfoHistory history) throws IOException
+  {
+    final List<DumpInfoHistory.Record> records = new ArrayList<DumpInfoHistory.Record>();
+
+    history.scan(new DumpInfoHistory.Visitor()
+    {
+      public void visit(final DumpInfoHistory.Record record)
+      {
+        records.add(record);
+      }
+    });
+
+    return records;
+  }
+
+  @Test
+  public void testAppendScanRoundTrip() throws IOException
+  {
+    final DumpInfoHistory history = new DumpInfoHistory(directory);
+    for (int i = 1; i <= 3; i++)
+    {
+      history.append(record(i));
+    }
+
+    final List<DumpInfoHistory.Record> records = scan(history);
+    assertEquals(3, records.size());
+
+    for (int i = 1; i <= 3; i++)
+    {
+      final DumpInfoHistory.Record record = records.get(i - 1);
+      assertEquals(1000L + i, record.getTimestamp());
+      assertEquals(11L, record.getJob());
+      assertEquals(i, record.getBuildNumber());
+      assertEquals(2000L + i, record.getSetUpNanos());
+      assertEquals(12L, record.getJenkinsVersion());
+      assertEquals(13L, record.getAgent());
+      assertEquals(14L, record.getJdk());
+      for (int s = 0; s < DumpInfoHistory.SECTIONS; s++)
+      {
+        assertEquals(i * 100L + s, record.getSection(s));
+      }
+    }
+  }
+
+  @Test
+  public void testSegmentRollover() throws IOException
+  {
+    final DumpInfoHistory history = new DumpInfoHistory(directory);
+    final int count = DumpInfoHistory.SEGMENT_RECORDS + 2;
+
+    for (int i = 0; i < count; i++)
+    {
+      history.append(record(i));
+    }
+
+    assertTrue(new File(directory, "segment-00000.dat").isFile());
+    assertTrue(new File(directory, "segment-00001.dat").isFile());
+    assertFalse(new File(directory, "segment-00002.dat").exists());
+    assertEquals(count, history.size());
+
+    final List<DumpInfoHistory.Record> records = scan(history);
+    assertEquals(count, records.size());
+    for (int i = 0; i < count; i++)
+    {
+      assertEquals(i, records.get(i).getBuildNumber());
+    }
+  }
+
+  @Test
+  public void testReopenFindsPosition() throws IOException
+  {
+    final DumpInfoHistory first = new DumpInfoHistory(directory);
+    for (int i = 0; i < 5; i++)
+    {
+      first.append(record(i));
+    }
+
+    final DumpInfoHistory second = new DumpInfoHistory(directory);
+    assertEquals(5, second.size());
+
+    second.append(record(5));
+    final List<DumpInfoHistory.Record> records = scan(new DumpInfoHistory(
+        directory));
+    assertEquals(6, records.size());
+    assertEquals(5, records.get(5).getBuildNumber());
+  }
+
+  @Test
+  public void testReopenAfterRolloverFindsPosition() throws IOException
+  {
+    final DumpInfoHistory first = new DumpInfoHistory(directory);
+    for (int i = 0; i < DumpInfoHistory.SEGMENT_RECORDS + 3; i++)
+    {
+      first.append(record(i));
+    }
+
+    assertEquals(DumpInfoHistory.SEGMENT_RECORDS + 3, new DumpInfoHistory(
+        directory).size());
+  }
+
+  /**
+   * Simulate a crash while appending to the names file.
+   */
+  private void tearNames() throws IOException
+  {
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(
+        new File(directory, "names.txt"), true), "UTF-8");
+    try
+    {
+      writer.write("not-hex\tbroken\n");
+      writer.write(Long.toHexString(DumpInfoHistory.fingerprint(0, "torn"))
+          + "\tto");
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  @Test
+  public void testTornNamesLineIsSkipped() throws IOException
+  {
+    final long job = new DumpInfoHistory(directory).name("job");
+    tearNames();
+
+    final long torn = DumpInfoHistory.fingerprint(0, "torn");
+
+    final DumpInfoHistory history = new DumpInfoHistory(directory);
+    assertEquals("job", history.resolve(job));
+    assertEquals(Long.toHexString(torn), history.resolve(torn));
+  }
+
+  @Test
+  public void testNameAfterTornLineSurvivesReopen() throws IOException
+  {
+    final long job = new DumpInfoHistory(directory).name("job");
+    tearNames();
+
+    final DumpInfoHistory writer = new DumpInfoHistory(directory);
+    final long agent = writer.name("agent");
+    final long torn = writer.name("torn");
+
+    final DumpInfoHistory history = new DumpInfoHistory(directory);
+    assertEquals("job", history.resolve(job));
+    assertEquals("agent", history.resolve(agent));
+    assertEquals("torn", history.resolve(torn));
+  }
+}